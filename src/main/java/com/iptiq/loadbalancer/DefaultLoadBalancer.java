@@ -5,10 +5,13 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -36,6 +39,8 @@ public class DefaultLoadBalancer implements ILoadBalancer {
     protected volatile List<ServiceProvider> upServiceProviderList = Collections
             .synchronizedList(new ArrayList<ServiceProvider>());
 
+    protected volatile ProviderStateTable stateTable = ProviderStateTable.build(Collections.<ServiceProvider>emptyList());
+
     protected ReadWriteLock allServerLock = new ReentrantReadWriteLock();
     protected ReadWriteLock upServerLock = new ReentrantReadWriteLock();
 
@@ -43,17 +48,59 @@ public class DefaultLoadBalancer implements ILoadBalancer {
     protected int pingIntervalMills = 1; // set X millis to ping
     protected AtomicBoolean pingInProgress = new AtomicBoolean(false);
 
+    protected ServiceProviderEventDispatcher eventDispatcher;
+
+    protected volatile SharedHealthRegistry healthRegistry = null;
+    protected volatile HealthSnapshot healthSnapshot = null;
+    protected long snapshotIntervalMillis = HealthSnapshot.DEFAULT_SAVE_INTERVAL_MILLIS;
+    private final AtomicLong lastSnapshotSave = new AtomicLong(0);
+    private final IServiceProviderListener snapshotWriter = new IServiceProviderListener() {
+        public void onServiceProviderEvents(List<ServiceProviderEvent> events) {
+            saveSnapshot();
+        }
+    };
+    private final Runnable snapshotSaver = new Runnable() {
+        public void run() {
+            saveSnapshot();
+        }
+    };
+    private final SharedHealthRegistry.Subscriber registrySubscriber = new SharedHealthRegistry.Subscriber() {
+        public void onProbeRoundComplete() {
+            // Runs on the shared registry thread: never wait for our own ping
+            try {
+                new Pinger(pingStrategy).runPinger();
+            } catch (Exception e) {
+                logger.error("LoadBalancer [{}]: Error applying shared health", name, e);
+            }
+        }
+    };
+
 
     /**
      * Default constructor which sets name as "default", sets dummy ping, and
      * {@link RoundRobinLoadBalancing} as the rule.
      **/
     public DefaultLoadBalancer() {
+        this(null);
+    }
+
+    /**
+     * Same as the default constructor, but takes health from the given shared
+     * registry, so no private ping timer is ever started.
+     *
+     * @param registry shared registry, or null to ping on a private timer
+     **/
+    public DefaultLoadBalancer(SharedHealthRegistry registry) {
         name = DEFAULT_NAME;
         ping = DEFAULT_PING;
         pingStrategy = DEFAULT_PING_STRATEGY;
+        eventDispatcher = new ServiceProviderEventDispatcher(name);
         setLoadBalancingAlgorithm(new RoundRobinLoadBalancing(this));
-        setupPingTask();
+        if (registry == null) {
+            setupPingTask();
+        } else {
+            setHealthRegistry(registry);
+        }
     }
 
 
@@ -80,6 +127,23 @@ public class DefaultLoadBalancer implements ILoadBalancer {
         }
     }
 
+    /**
+     * Choose a slot of the given table, see {@link ILoadBalancingAlgorithm#chooseSlot(ProviderStateTable)}.
+     *
+     * @return slot chosen, -1 if none
+     */
+    int chooseSlot(ProviderStateTable table) {
+        if (rule == null) {
+            return -1;
+        }
+        try {
+            return rule.chooseSlot(table);
+        } catch (Exception e) {
+            logger.warn("LoadBalancer [{}]:  Error choosing server", name, e);
+            return -1;
+        }
+    }
+
     /**
      * To be called by the clients of the load balancer to notify that a ServiceProvider is down
      * else, the LB will think its still Alive until the next Ping cycle - potentially
@@ -95,6 +159,22 @@ public class DefaultLoadBalancer implements ILoadBalancer {
 
         logger.error("LoadBalancer [{}]:  markServerDown called on [{}]", name, serviceProvider.getId());
         serviceProvider.setAlive(false);
+        ProviderStateTable table = stateTable;
+        int slot = table.slotOf(serviceProvider);
+        if (slot >= 0) {
+            table.setAlive(slot, false);
+        }
+        eventDispatcher.publish(ServiceProviderEvent.Type.DOWN, serviceProvider);
+    }
+
+    @Override
+    public void addServiceProviderListener(IServiceProviderListener listener) {
+        eventDispatcher.addListener(listener);
+    }
+
+    @Override
+    public void removeServiceProviderListener(IServiceProviderListener listener) {
+        eventDispatcher.removeListener(listener);
     }
 
     /**
@@ -130,13 +210,31 @@ public class DefaultLoadBalancer implements ILoadBalancer {
         }
 
         public void runPinger() throws Exception {
+            runPinger(false);
+        }
+
+        /**
+         * @param waitForInProgress wait for a ping in progress to finish and
+         *                          ping again instead of returning, since it may
+         *                          have started before the server list changed.
+         *                          Must not be used while holding allServerLock.
+         */
+        public void runPinger(boolean waitForInProgress) throws Exception {
             if (!pingInProgress.compareAndSet(false, true)) {
-                return; // Ping in progress - nothing to do
+                if (!waitForInProgress) {
+                    return; // Ping in progress - nothing to do
+                }
+                synchronized (pingInProgress) {
+                    while (!pingInProgress.compareAndSet(false, true)) {
+                        pingInProgress.wait();
+                    }
+                }
             }
 
             // we are "in" - we get to Ping
 
             ServiceProvider[] allServiceProviders = null;
+            ProviderStateTable table = null;
             boolean[] results = null;
 
             Lock allLock = null;
@@ -150,13 +248,13 @@ public class DefaultLoadBalancer implements ILoadBalancer {
                 allLock = allServerLock.readLock();
                 allLock.lock();
                 allServiceProviders = allServiceProviderList.toArray(new ServiceProvider[allServiceProviderList.size()]);
+                table = stateTable;
                 allLock.unlock();
 
                 int numCandidates = allServiceProviders.length;
                 results = pingerStrategy.pingServers(ping, allServiceProviders);
 
                 final List<ServiceProvider> newUpList = new ArrayList<ServiceProvider>();
-                final List<ServiceProvider> changedServiceProviders = new ArrayList<ServiceProvider>();
 
                 for (int i = 0; i < numCandidates; i++) {
                     boolean isAlive = results[i];
@@ -164,9 +262,10 @@ public class DefaultLoadBalancer implements ILoadBalancer {
                     boolean oldIsAlive = svr.isAlive();
 
                     svr.setAlive(isAlive);
+                    table.setAlive(table.slotAt(i), isAlive);
 
                     if (oldIsAlive != isAlive) {
-                        changedServiceProviders.add(svr);
+                        eventDispatcher.publish(isAlive ? ServiceProviderEvent.Type.UP : ServiceProviderEvent.Type.DOWN, svr);
                         logger.debug("LoadBalancer [{}]:  ServiceProvider [{}] status changed to {}",
                                 name, svr.getId(), (isAlive ? "ALIVE" : "DEAD"));
                     }
@@ -177,10 +276,19 @@ public class DefaultLoadBalancer implements ILoadBalancer {
                 }
                 upLock = upServerLock.writeLock();
                 upLock.lock();
-                upServiceProviderList = newUpList;
+                // Don't let a round over a server list replaced meanwhile
+                // overwrite the up list of the new one
+                if (table == stateTable) {
+                    upServiceProviderList = newUpList;
+                }
                 upLock.unlock();
+
+                scheduleSnapshotIfDue();
             } finally {
-                pingInProgress.set(false);
+                synchronized (pingInProgress) {
+                    pingInProgress.set(false);
+                    pingInProgress.notifyAll();
+                }
             }
         }
     }
@@ -196,13 +304,15 @@ public class DefaultLoadBalancer implements ILoadBalancer {
     }
 
     /*
-     * Force an immediate ping, if we're not currently pinging and don't have a
-     * quick-ping already scheduled.
+     * Force an immediate ping, after the one in progress if any, so that the
+     * up list reflects the current server list when this returns.
      */
     public void forceQuickPing() {
         logger.debug("LoadBalancer [{}]:  forceQuickPing invoking", name);
         try {
-            new Pinger(pingStrategy).runPinger();
+            new Pinger(pingStrategy).runPinger(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             logger.error("LoadBalancer [{}]: Error running forceQuickPing()", name, e);
         }
@@ -262,7 +372,8 @@ public class DefaultLoadBalancer implements ILoadBalancer {
         Lock writeLock = allServerLock.writeLock();
         logger.debug("LoadBalancer [{}]: clearing ServiceProvider list (SET op)", name);
 
-        ArrayList<ServiceProvider> newServiceProviders = new ArrayList<ServiceProvider>();
+        boolean listChanged = false;
+        boolean restored = false;
         writeLock.lock();
         try {
             ArrayList<ServiceProvider> allServiceProviders = new ArrayList<ServiceProvider>();
@@ -281,20 +392,235 @@ public class DefaultLoadBalancer implements ILoadBalancer {
                 }
 
             }
-            boolean listChanged = false;
             if (!allServiceProviderList.equals(allServiceProviders)) {
                 listChanged = true;
             }
             // This will reset readyToServe flag to true on all servers
             // regardless whether
             // previous priming connections are success or not
+            List<ServiceProvider> oldServiceProviders = allServiceProviderList;
             allServiceProviderList = allServiceProviders;
             if (listChanged) {
-                forceQuickPing();
+                List<ServiceProvider> restoredAlive = onMembershipChanged(oldServiceProviders, allServiceProviders);
+                ProviderStateTable oldTable = stateTable;
+                ProviderStateTable table = ProviderStateTable.build(allServiceProviders, oldTable);
+                restoreLastKnownStatistics(table, oldTable);
+                if (healthSnapshot != null) {
+                    // Only the providers of the restart are seeded, later
+                    // ones start fresh
+                    healthSnapshot.discard();
+                }
+                // Publish the table first: a ping round over the old list
+                // checks it before replacing the up list
+                stateTable = table;
+                if (!restoredAlive.isEmpty()) {
+                    restored = true;
+                    seedUpList(restoredAlive, allServiceProviders);
+                }
             }
         } finally {
             writeLock.unlock();
         }
+        // A synchronous ping would overwrite the restored state before anyone
+        // could use it; leave confirming it to the ping timer or registry
+        if (listChanged && !restored) {
+            forceQuickPing();
+        }
+    }
+
+    /**
+     * @return added providers restored as alive from the health snapshot
+     */
+    private List<ServiceProvider> onMembershipChanged(List<ServiceProvider> oldList, List<ServiceProvider> newList) {
+        Set<ServiceProvider> oldSet = new HashSet<ServiceProvider>(oldList);
+        Set<ServiceProvider> newSet = new HashSet<ServiceProvider>(newList);
+        List<ServiceProvider> restored = new ArrayList<ServiceProvider>();
+        for (ServiceProvider svr : newSet) {
+            if (!oldSet.contains(svr)) {
+                if (healthRegistry != null) {
+                    healthRegistry.register(svr);
+                }
+                if (restoreLastKnownHealth(svr)) {
+                    restored.add(svr);
+                }
+                eventDispatcher.publish(ServiceProviderEvent.Type.ADDED, svr);
+            }
+        }
+        for (ServiceProvider svr : oldSet) {
+            if (!newSet.contains(svr)) {
+                if (healthRegistry != null) {
+                    healthRegistry.unregister(svr);
+                }
+                eventDispatcher.publish(ServiceProviderEvent.Type.REMOVED, svr);
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Serve with the last known good state until the ping confirms it.
+     */
+    private void seedUpList(List<ServiceProvider> restored, List<ServiceProvider> allServiceProviders) {
+        Set<ServiceProvider> all = new HashSet<ServiceProvider>(allServiceProviders);
+        Lock upLock = upServerLock.writeLock();
+        upLock.lock();
+        try {
+            List<ServiceProvider> newUpList = new ArrayList<ServiceProvider>();
+            for (ServiceProvider svr : upServiceProviderList) {
+                if (all.contains(svr)) {
+                    newUpList.add(svr);
+                }
+            }
+            newUpList.addAll(restored);
+            upServiceProviderList = newUpList;
+        } finally {
+            upLock.unlock();
+        }
+    }
+
+    private void saveSnapshot() {
+        HealthSnapshot snapshot = healthSnapshot;
+        if (snapshot != null) {
+            lastSnapshotSave.set(System.currentTimeMillis());
+            snapshot.save(stateTable);
+        }
+    }
+
+    /**
+     * Called after every ping round so that statistics get persisted even
+     * while health is stable; the write itself happens on the event
+     * dispatcher thread, not the ping thread.
+     */
+    private void scheduleSnapshotIfDue() {
+        if (healthSnapshot == null) {
+            return;
+        }
+        long last = lastSnapshotSave.get();
+        long now = System.currentTimeMillis();
+        if (now - last >= snapshotIntervalMillis && lastSnapshotSave.compareAndSet(last, now)) {
+            eventDispatcher.execute(snapshotSaver);
+        }
+    }
+
+    /**
+     * Seed the latency of providers new to the pool from the snapshot; the
+     * others carried their live statistics over from the old table.
+     */
+    private void restoreLastKnownStatistics(ProviderStateTable table, ProviderStateTable oldTable) {
+        HealthSnapshot snapshot = healthSnapshot;
+        if (snapshot == null) {
+            return;
+        }
+        for (int slot = 0; slot < table.size(); slot++) {
+            if (oldTable.slotOf(table.provider(slot)) >= 0) {
+                continue;
+            }
+            double latencyEwma = snapshot.lastKnownLatencyEwma(table.provider(slot).getId());
+            if (latencyEwma > 0) {
+                table.setLatencyEwma(slot, latencyEwma);
+            }
+        }
+    }
+
+    /**
+     * @return true if the provider was never checked and the snapshot says it
+     * was alive, in which case it is marked alive.
+     */
+    private boolean restoreLastKnownHealth(ServiceProvider svr) {
+        HealthSnapshot snapshot = healthSnapshot;
+        if (snapshot == null || svr.isAlive()) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(snapshot.lastKnownAlive(svr.getId()))) {
+            logger.debug("LoadBalancer [{}]:  ServiceProvider [{}] restored as ALIVE from snapshot", name, svr.getId());
+            svr.setAlive(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Persist provider health and latency to the given snapshot whenever
+     * health or membership changes and every {@link #snapshotIntervalMillis}
+     * (checked after each ping round), and use what it recorded to seed
+     * the next server list set, so that a restarted load balancer can route
+     * before its first ping completes. Should be set before the servers are added.
+     *
+     * @param snapshot snapshot to use, or null to stop persisting
+     */
+    public void setHealthSnapshot(HealthSnapshot snapshot) {
+        lastSnapshotSave.set(System.currentTimeMillis());
+        healthSnapshot = snapshot;
+        if (snapshot == null) {
+            eventDispatcher.removeListener(snapshotWriter);
+        } else if (!eventDispatcher.hasListener(snapshotWriter)) {
+            eventDispatcher.addListener(snapshotWriter);
+        }
+    }
+
+    /**
+     * Take health from a shared registry instead of pinging on our own timer,
+     * so that load balancers sharing backends probe each of them only once.
+     * Passing null goes back to the private ping task.
+     *
+     * @param registry shared registry, e.g. {@link SharedHealthRegistry#getDefault()}
+     */
+    public void setHealthRegistry(SharedHealthRegistry registry) {
+        Lock writeLock = allServerLock.writeLock();
+        writeLock.lock();
+        try {
+            detachHealthRegistry();
+            healthRegistry = registry;
+            if (registry != null) {
+                if (lbTimer != null) {
+                    lbTimer.cancel();
+                    lbTimer = null;
+                }
+                pingStrategy = new SharedHealthPingStrategy(registry);
+                for (ServiceProvider svr : new HashSet<ServiceProvider>(allServiceProviderList)) {
+                    registry.register(svr);
+                }
+                registry.subscribe(registrySubscriber);
+            } else {
+                pingStrategy = DEFAULT_PING_STRATEGY;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (registry == null) {
+            setupPingTask();
+        } else {
+            forceQuickPing();
+        }
+    }
+
+    private void detachHealthRegistry() {
+        if (healthRegistry == null) {
+            return;
+        }
+        healthRegistry.unsubscribe(registrySubscriber);
+        for (ServiceProvider svr : new HashSet<ServiceProvider>(allServiceProviderList)) {
+            healthRegistry.unregister(svr);
+        }
+        healthRegistry = null;
+    }
+
+    /**
+     * Stop pinging and delivering events. The load balancer must not be used
+     * afterwards.
+     */
+    public void shutdown() {
+        if (lbTimer != null) {
+            lbTimer.cancel();
+        }
+        Lock writeLock = allServerLock.writeLock();
+        writeLock.lock();
+        try {
+            detachHealthRegistry();
+        } finally {
+            writeLock.unlock();
+        }
+        eventDispatcher.shutdown();
     }
 
     @Override
@@ -307,11 +633,32 @@ public class DefaultLoadBalancer implements ILoadBalancer {
         return Collections.unmodifiableList(allServiceProviderList);
     }
 
+    @Override
+    public ProviderStateTable getStateTable() {
+        return stateTable;
+    }
+
     @Override
     public <U, T> U get(T req) throws Exception {
-        ServiceProvider s = chooseServer();
-        if ( null != s ) {
-            return (U) s.get(req);
+        ProviderStateTable table = stateTable;
+        int slot = chooseSlot(table);
+        if ( slot >= 0 ) {
+            ServiceProvider s = table.provider(slot);
+            long start = System.nanoTime();
+            table.requestStarted(slot);
+            try {
+                return (U) s.get(req);
+            } finally {
+                ProviderStateTable current = stateTable;
+                if (current != table) {
+                    // The server list changed meanwhile and the counters moved to the new table
+                    table = current;
+                    slot = current.slotOf(s);
+                }
+                if (slot >= 0) {
+                    table.requestFinished(slot, (System.nanoTime() - start) / 1000);
+                }
+            }
         }
         else {
             throw new Exception("No downstream ServiceProviders are up");
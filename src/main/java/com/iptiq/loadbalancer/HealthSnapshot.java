@@ -0,0 +1,176 @@
+package com.iptiq.loadbalancer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary file with the last known health and latency EWMA of each
+ * {@link ServiceProvider}, used to let a restarted load balancer serve right
+ * away instead of waiting for the first ping. The file is read lazily on the
+ * first lookup and replaced atomically on every save. What was read is only
+ * meant for the restart: it is dropped by {@link #discard()} once restored,
+ * and lookups return nothing once it is older than <code>maxAgeMillis</code>.
+ *
+ * Layout: magic, version, written-at millis, entry count, then for every
+ * entry the id (modified UTF-8), the alive flag and the latency EWMA in
+ * microseconds. Version 1 (id and alive flag only) and version 2 (with a
+ * weight before the EWMA) files are still read.
+ */
+public class HealthSnapshot {
+
+    private static Logger logger = LoggerFactory.getLogger(HealthSnapshot.class);
+
+    private static final int MAGIC = 0x4C424853; // "LBHS"
+    private static final byte VERSION = 3;
+    public static final long DEFAULT_SAVE_INTERVAL_MILLIS = 10 * 1000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+    static class Entry {
+        final boolean alive;
+        final double latencyEwma;
+
+        Entry(boolean alive, double latencyEwma) {
+            this.alive = alive;
+            this.latencyEwma = latencyEwma;
+        }
+    }
+
+    private final Path file;
+    private final long maxAgeMillis;
+
+    private volatile Map<String, Entry> lastKnown = null;
+    private volatile long writtenAt = 0;
+
+    public HealthSnapshot(Path file) {
+        this(file, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public HealthSnapshot(Path file, long maxAgeMillis) {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return the recorded health of the provider, or null if it is unknown or
+     * the record is too old to be trusted
+     */
+    public Boolean lastKnownAlive(String id) {
+        Entry entry = lastKnown(id);
+        return entry == null ? null : entry.alive;
+    }
+
+    /**
+     * @return the recorded latency EWMA of the provider in microseconds, 0 if unknown
+     */
+    public double lastKnownLatencyEwma(String id) {
+        Entry entry = lastKnown(id);
+        return entry == null ? 0 : entry.latencyEwma;
+    }
+
+    private Entry lastKnown(String id) {
+        Map<String, Entry> known = lastKnown;
+        if (known == null) {
+            synchronized (this) {
+                if (lastKnown == null) {
+                    lastKnown = load();
+                }
+                known = lastKnown;
+            }
+        }
+        if (known.isEmpty()) {
+            return null;
+        }
+        if (System.currentTimeMillis() - writtenAt > maxAgeMillis) {
+            logger.info("HealthSnapshot [{}]: expired, dropping", file);
+            discard();
+            return null;
+        }
+        return known.get(id);
+    }
+
+    /**
+     * Forget what was read from the file; lookups return nothing from now on.
+     * Saving is not affected.
+     */
+    public void discard() {
+        lastKnown = Collections.emptyMap();
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> known = new HashMap<String, Entry>();
+        if (!Files.exists(file)) {
+            return known;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte version;
+            if (in.readInt() != MAGIC || (version = in.readByte()) < 1 || version > VERSION) {
+                logger.warn("HealthSnapshot [{}]: unknown format, ignoring", file);
+                return known;
+            }
+            long writtenAt = in.readLong();
+            if (System.currentTimeMillis() - writtenAt > maxAgeMillis) {
+                logger.info("HealthSnapshot [{}]: too old, ignoring", file);
+                return known;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                boolean alive = in.readBoolean();
+                if (version == 1) {
+                    known.put(id, new Entry(alive, 0));
+                    continue;
+                }
+                if (version == 2) {
+                    in.readInt(); // weight, no longer recorded
+                }
+                known.put(id, new Entry(alive, in.readDouble()));
+            }
+            this.writtenAt = writtenAt;
+            logger.info("HealthSnapshot [{}]: restored {} entries", file, count);
+        } catch (IOException e) {
+            logger.warn("HealthSnapshot [{}]: could not be read, ignoring", file, e);
+            known.clear();
+        }
+        return known;
+    }
+
+    /**
+     * Record the current health and latency of every provider in the table,
+     * replacing the previous snapshot.
+     */
+    public synchronized void save(ProviderStateTable table) {
+        if (lastKnown == null) {
+            // Don't overwrite what the restart has yet to restore
+            lastKnown = load();
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(table.size());
+                for (int slot = 0; slot < table.size(); slot++) {
+                    out.writeUTF(table.provider(slot).getId());
+                    out.writeBoolean(table.provider(slot).isAlive());
+                    out.writeDouble(table.latencyEwma(slot));
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("HealthSnapshot [{}]: Error saving", file, e);
+        }
+    }
+}
@@ -42,6 +42,36 @@ public interface ILoadBalancer {
      */
     List<ServiceProvider> getAllServers();
 
+    /**
+     * @return slot indexed liveness, weights and statistics of the current
+     * server list, see {@link ProviderStateTable}; null if not maintained, in
+     * which case algorithms use {@link #getReachableServers()} and
+     * {@link #getAllServers()}
+     */
+    default ProviderStateTable getStateTable() {
+        return null;
+    }
+
+    /**
+     * Register a listener to be notified asynchronously, in coalesced batches,
+     * whenever a server goes up or down or joins or leaves the pool. Load
+     * balancers that don't publish events keep the default, which throws
+     * {@link UnsupportedOperationException}.
+     *
+     * @param listener listener to add
+     */
+    default void addServiceProviderListener(IServiceProviderListener listener) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not publish ServiceProvider events");
+    }
+
+    /**
+     * Does nothing by default, since the default never registers listeners.
+     *
+     * @param listener listener to remove
+     */
+    default void removeServiceProviderListener(IServiceProviderListener listener) {
+    }
+
     <U, T> U get(T req) throws Exception;
 
     void setLoadBalancingAlgorithm(ILoadBalancingAlgorithm algorithm);
@@ -2,4 +2,16 @@ package com.iptiq.loadbalancer;
 
 public interface ILoadBalancingAlgorithm {
     ServiceProvider choose();
+
+    /**
+     * Choose by slot of the given table, so that the caller maps back to the
+     * {@link ServiceProvider} and records statistics without a lookup. The
+     * default goes through {@link #choose()}.
+     *
+     * @return slot chosen, or -1 if none
+     */
+    default int chooseSlot(ProviderStateTable table) {
+        ServiceProvider serviceProvider = choose();
+        return serviceProvider == null ? -1 : table.slotOf(serviceProvider);
+    }
 }
\ No newline at end of file
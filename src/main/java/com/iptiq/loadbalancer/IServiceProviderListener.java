@@ -0,0 +1,20 @@
+package com.iptiq.loadbalancer;
+
+import java.util.List;
+
+/**
+ * Interface that defines how interested parties get notified about health and
+ * membership changes of the servers behind a load balancer.
+ *
+ */
+public interface IServiceProviderListener {
+
+    /**
+     * Called asynchronously with a batch of coalesced events, never from the
+     * ping thread. A provider that flapped and ended up in its original state
+     * within one batch produces no event at all.
+     *
+     * @param events non empty list of events, in the order they first occurred
+     */
+    void onServiceProviderEvents(List<ServiceProviderEvent> events);
+}
@@ -0,0 +1,267 @@
+package com.iptiq.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per provider state laid out as primitive arrays indexed by an int slot, so
+ * that algorithms can select without walking lists of {@link ServiceProvider}s
+ * and map back to the provider only once they picked a slot.
+ *
+ * Every distinct provider id gets one slot; adding the same provider several
+ * times to the server list raises its weight instead. <code>slotAt(position)</code>
+ * maps each position of the server list to its slot, which keeps round robin
+ * over the list (and its weightage) intact.
+ *
+ * Liveness is a bitset of 64 slots per word, and so is readiness to serve, as
+ * of when the table was built. In-flight counts and the latency
+ * EWMA are written on every request, so each slot gets its own 64 byte run of
+ * the counters array to keep request threads from false sharing.
+ *
+ * A table is immutable in membership: the load balancer builds a new one when
+ * its server list changes, carrying over the statistics of the providers
+ * that stay, see {@link #build(List, ProviderStateTable)}.
+ */
+public class ProviderStateTable {
+
+    private static final int STRIDE = 8; // longs per slot, one cache line
+    private static final int IN_FLIGHT = 0;
+    private static final int LATENCY_EWMA = 1;
+    static final double EWMA_ALPHA = 0.2;
+
+    private final ServiceProvider[] providers;
+    private final Map<String, Integer> slotById;
+    private final int[] slotByPosition;
+    private final int[] weights;
+    private final boolean uniformWeights;
+    private final AtomicLongArray alive;
+    private final long[] ready;
+    private final AtomicLongArray counters;
+
+    private ProviderStateTable(ServiceProvider[] providers, Map<String, Integer> slotById,
+                               int[] slotByPosition, int[] weights) {
+        this.providers = providers;
+        this.slotById = slotById;
+        this.slotByPosition = slotByPosition;
+        this.weights = weights;
+        boolean uniform = true;
+        for (int weight : weights) {
+            uniform &= weight == 1;
+        }
+        this.uniformWeights = uniform;
+        this.alive = new AtomicLongArray((providers.length + 63) >>> 6);
+        this.ready = new long[(providers.length + 63) >>> 6];
+        for (int slot = 0; slot < providers.length; slot++) {
+            if (providers[slot].isReadyToServe()) {
+                ready[slot >>> 6] |= 1L << slot;
+            }
+        }
+        this.counters = new AtomicLongArray(providers.length * STRIDE);
+    }
+
+    /**
+     * Build a table for the given server list, taking liveness from
+     * {@link ServiceProvider#isAlive()}. Statistics start from zero.
+     */
+    public static ProviderStateTable build(List<ServiceProvider> serviceProviders) {
+        return build(serviceProviders, null);
+    }
+
+    /**
+     * Same as {@link #build(List)}, but providers also in <code>previous</code>
+     * keep their in-flight count and latency EWMA. Requests finishing while the
+     * new table is being built may still be counted on the old one.
+     */
+    public static ProviderStateTable build(List<ServiceProvider> serviceProviders, ProviderStateTable previous) {
+        List<ServiceProvider> distinct = new ArrayList<ServiceProvider>();
+        Map<String, Integer> slotById = new HashMap<String, Integer>();
+        int[] slotByPosition = new int[serviceProviders.size()];
+        for (int i = 0; i < slotByPosition.length; i++) {
+            ServiceProvider svr = serviceProviders.get(i);
+            Integer slot = slotById.get(svr.getId());
+            if (slot == null) {
+                slot = distinct.size();
+                slotById.put(svr.getId(), slot);
+                distinct.add(svr);
+            }
+            slotByPosition[i] = slot;
+        }
+        int[] weights = new int[distinct.size()];
+        for (int slot : slotByPosition) {
+            weights[slot]++;
+        }
+
+        ProviderStateTable table = new ProviderStateTable(distinct.toArray(new ServiceProvider[distinct.size()]),
+                slotById, slotByPosition, weights);
+        for (int slot = 0; slot < table.size(); slot++) {
+            table.setAlive(slot, table.provider(slot).isAlive());
+            int previousSlot = previous == null ? -1 : previous.slotOf(table.provider(slot));
+            if (previousSlot >= 0) {
+                for (int i = 0; i < STRIDE; i++) {
+                    table.counters.set(slot * STRIDE + i, previous.counters.get(previousSlot * STRIDE + i));
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return number of slots, i.e. distinct providers
+     */
+    public int size() {
+        return providers.length;
+    }
+
+    /**
+     * @return number of positions in the server list the table was built from
+     */
+    public int positions() {
+        return slotByPosition.length;
+    }
+
+    public int slotAt(int position) {
+        return slotByPosition[position];
+    }
+
+    public ServiceProvider provider(int slot) {
+        return providers[slot];
+    }
+
+    /**
+     * @return slot of the provider, or -1 if it is not in this table
+     */
+    public int slotOf(ServiceProvider serviceProvider) {
+        Integer slot = slotById.get(serviceProvider.getId());
+        return slot == null ? -1 : slot;
+    }
+
+    public int weight(int slot) {
+        return weights[slot];
+    }
+
+    public boolean isAlive(int slot) {
+        return (alive.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    public boolean isReadyToServe(int slot) {
+        return (ready[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    public void setAlive(int slot, boolean isAlive) {
+        int word = slot >>> 6;
+        long bit = 1L << slot;
+        for (;;) {
+            long current = alive.get(word);
+            long next = isAlive ? current | bit : current & ~bit;
+            if (current == next || alive.compareAndSet(word, current, next))
+                return;
+        }
+    }
+
+    /**
+     * @return total weight of the alive slots
+     */
+    public int aliveWeight() {
+        int total = 0;
+        if (uniformWeights) {
+            for (int word = 0; word < alive.length(); word++) {
+                total += Long.bitCount(alive.get(word));
+            }
+            return total;
+        }
+        for (int slot = nextAlive(0); slot >= 0; slot = nextAlive(slot + 1)) {
+            total += weights[slot];
+        }
+        return total;
+    }
+
+    /**
+     * @return first alive slot at or after <code>fromSlot</code>, -1 if none
+     */
+    public int nextAlive(int fromSlot) {
+        if (fromSlot >= providers.length) {
+            return -1;
+        }
+        int word = fromSlot >>> 6;
+        long bits = alive.get(word) & (-1L << fromSlot);
+        for (;;) {
+            if (bits != 0) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return slot < providers.length ? slot : -1;
+            }
+            if (++word == alive.length()) {
+                return -1;
+            }
+            bits = alive.get(word);
+        }
+    }
+
+    /**
+     * Pick the alive slot owning the n-th unit of alive weight, so that a
+     * uniform n in [0, {@link #aliveWeight()}) selects slots proportionally
+     * to their weight.
+     *
+     * @return the slot, or -1 if liveness changed and n is now out of range
+     */
+    public int chooseAlive(int n) {
+        if (uniformWeights) {
+            for (int word = 0; word < alive.length(); word++) {
+                long bits = alive.get(word);
+                int count = Long.bitCount(bits);
+                if (n < count) {
+                    for (int i = 0; i < n; i++) {
+                        bits &= bits - 1;
+                    }
+                    return (word << 6) + Long.numberOfTrailingZeros(bits);
+                }
+                n -= count;
+            }
+            return -1;
+        }
+        for (int slot = nextAlive(0); slot >= 0; slot = nextAlive(slot + 1)) {
+            n -= weights[slot];
+            if (n < 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public long inFlight(int slot) {
+        return counters.get(slot * STRIDE + IN_FLIGHT);
+    }
+
+    /**
+     * @return exponentially weighted moving average of the request latency in
+     * microseconds, 0 until the first request finished
+     */
+    public double latencyEwma(int slot) {
+        return Double.longBitsToDouble(counters.get(slot * STRIDE + LATENCY_EWMA));
+    }
+
+    /**
+     * Seed the latency EWMA, e.g. from a {@link HealthSnapshot}.
+     */
+    public void setLatencyEwma(int slot, double latencyMicros) {
+        counters.set(slot * STRIDE + LATENCY_EWMA, Double.doubleToRawLongBits(latencyMicros));
+    }
+
+    public void requestStarted(int slot) {
+        counters.incrementAndGet(slot * STRIDE + IN_FLIGHT);
+    }
+
+    public void requestFinished(int slot, long latencyMicros) {
+        counters.decrementAndGet(slot * STRIDE + IN_FLIGHT);
+        int index = slot * STRIDE + LATENCY_EWMA;
+        for (;;) {
+            long current = counters.get(index);
+            double ewma = Double.longBitsToDouble(current);
+            double next = ewma == 0 ? latencyMicros : ewma + EWMA_ALPHA * (latencyMicros - ewma);
+            if (counters.compareAndSet(index, current, Double.doubleToRawLongBits(next)))
+                return;
+        }
+    }
+}
@@ -4,22 +4,76 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class RandomLoadBalancing implements ILoadBalancingAlgorithm {
 
     /**
-     * Randomly choose from all living servers
+     * Randomly choose from all living servers, proportionally to their weight
      */
     private ILoadBalancer lb;
+    private final Random random;
     private static final Logger log = LoggerFactory.getLogger(RandomLoadBalancing.class);
     public RandomLoadBalancing(ILoadBalancer lb) {
+        this(lb, null);
+    }
+
+    /**
+     * @param random source of randomness, e.g. a seeded one for reproducible
+     *               runs; null uses {@link ThreadLocalRandom}
+     */
+    public RandomLoadBalancing(ILoadBalancer lb, Random random) {
         this.lb = lb;
+        this.random = random;
     }
     public ServiceProvider choose() {
         if (lb == null) {
             return null;
         }
+        ProviderStateTable table = lb.getStateTable();
+        if (table == null) {
+            return chooseFromLists();
+        }
+        int slot = chooseSlot(table);
+        return slot < 0 ? null : table.provider(slot);
+    }
+
+    @Override
+    public int chooseSlot(ProviderStateTable table) {
+        while (true) {
+            if (Thread.interrupted()) {
+                return -1;
+            }
+
+            int aliveWeight = table.aliveWeight();
+            if (aliveWeight == 0) {
+                /*
+                 * No servers. End regardless of pass, because subsequent passes
+                 * only get more restrictive.
+                 */
+                return -1;
+            }
+
+            int slot = table.chooseAlive(chooseRandomInt(aliveWeight));
+            if (slot >= 0) {
+                return slot;
+            }
+
+            /*
+             * The only time this should happen is if servers went down since
+             * we counted them. This is a transient condition. Retry after
+             * yielding.
+             */
+            Thread.yield();
+        }
+
+    }
+
+    /**
+     * For load balancers without a {@link ProviderStateTable}.
+     */
+    private ServiceProvider chooseFromLists() {
         ServiceProvider serviceProvider = null;
 
         while (serviceProvider == null) {
@@ -30,11 +84,7 @@ public class RandomLoadBalancing implements ILoadBalancingAlgorithm {
             List<ServiceProvider> allList = lb.getAllServers();
 
             int serverCount = allList.size();
-            if (serverCount == 0) {
-                /*
-                 * No servers. End regardless of pass, because subsequent passes
-                 * only get more restrictive.
-                 */
+            if (serverCount == 0 || upList.isEmpty()) {
                 return null;
             }
 
@@ -62,12 +112,11 @@ public class RandomLoadBalancing implements ILoadBalancingAlgorithm {
         }
 
         return serviceProvider;
-
     }
 
     protected int chooseRandomInt(int serverCount) {
         log.debug("ServiceProvider count while choosing random [{}]", serverCount);
-        int value = ThreadLocalRandom.current().nextInt(serverCount);
+        int value = (random != null ? random : ThreadLocalRandom.current()).nextInt(serverCount);
         log.debug("Random server id chosen [{}]", value);
         return value;
     }
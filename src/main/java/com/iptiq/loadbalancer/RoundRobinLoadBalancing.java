@@ -23,7 +23,39 @@ public class RoundRobinLoadBalancing implements ILoadBalancingAlgorithm {
             log.warn("no load balancer");
             return null;
         }
+        ProviderStateTable table = lb.getStateTable();
+        if (table == null) {
+            return chooseFromLists();
+        }
+        int slot = chooseSlot(table);
+        return slot < 0 ? null : table.provider(slot);
+    }
 
+    @Override
+    public int chooseSlot(ProviderStateTable table) {
+        int serverCount = table.positions();
+        if ((serverCount == 0) || (table.nextAlive(0) < 0)) {
+            log.warn("No up servers available from load balancer: " + lb);
+            return -1;
+        }
+
+        int count = 0;
+        while (count++ < 10) {
+            int slot = table.slotAt(incrementAndGetModulo(serverCount));
+            if (table.isAlive(slot) && table.isReadyToServe(slot)) {
+                return slot;
+            }
+        }
+
+        log.warn("No available alive servers after 10 tries from load balancer: "
+                + lb);
+        return -1;
+    }
+
+    /**
+     * For load balancers without a {@link ProviderStateTable}.
+     */
+    private ServiceProvider chooseFromLists() {
         ServiceProvider serviceProvider = null;
         int count = 0;
         while (serviceProvider == null && count++ < 10) {
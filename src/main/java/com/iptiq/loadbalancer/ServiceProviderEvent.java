@@ -0,0 +1,39 @@
+package com.iptiq.loadbalancer;
+
+/**
+ * A change in the state of a {@link ServiceProvider} as seen by a load balancer.
+ * UP/DOWN are health transitions detected by the ping cycle (or
+ * {@link ILoadBalancer#markServerDown(ServiceProvider)}), ADDED/REMOVED are
+ * membership changes of the server pool.
+ */
+public class ServiceProviderEvent {
+
+    public enum Type {
+        ADDED, REMOVED, UP, DOWN
+    }
+
+    private final Type type;
+    private final ServiceProvider serviceProvider;
+
+    public ServiceProviderEvent(Type type, ServiceProvider serviceProvider) {
+        this.type = type;
+        this.serviceProvider = serviceProvider;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public ServiceProvider getServiceProvider() {
+        return serviceProvider;
+    }
+
+    public boolean isHealthEvent() {
+        return type == Type.UP || type == Type.DOWN;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + serviceProvider.getId() + "]";
+    }
+}
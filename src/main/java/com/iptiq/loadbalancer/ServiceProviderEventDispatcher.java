@@ -0,0 +1,191 @@
+package com.iptiq.loadbalancer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects {@link ServiceProviderEvent}s published by a load balancer and
+ * delivers them in batches to the registered {@link IServiceProviderListener}s
+ * on a dedicated daemon thread.
+ *
+ * Events are coalesced per provider while a batch is pending: repeating a
+ * transition is a no-op, and reverting it (DOWN then UP, ADDED then REMOVED)
+ * cancels it out. A slow listener therefore only makes the next batch bigger,
+ * it never blocks the publisher. Removing a provider also drops its pending
+ * health event, which comes back if the provider is added again within the
+ * same batch.
+ */
+public class ServiceProviderEventDispatcher {
+
+    private static Logger logger = LoggerFactory.getLogger(ServiceProviderEventDispatcher.class);
+
+    public static final long DEFAULT_COALESCE_WINDOW_MILLIS = 50;
+
+    private final String name;
+    private final long coalesceWindowMillis;
+    private final List<IServiceProviderListener> listeners = new CopyOnWriteArrayList<IServiceProviderListener>();
+
+    private final Object pendingLock = new Object();
+    private final Map<String, ServiceProviderEvent> pending = new LinkedHashMap<String, ServiceProviderEvent>();
+    // Health events dropped by a pending REMOVED, by provider id
+    private final Map<String, ServiceProviderEvent> removedHealth = new HashMap<String, ServiceProviderEvent>();
+    private boolean flushScheduled = false;
+
+    private ScheduledExecutorService executor = null;
+
+    public ServiceProviderEventDispatcher(String name) {
+        this(name, DEFAULT_COALESCE_WINDOW_MILLIS);
+    }
+
+    public ServiceProviderEventDispatcher(String name, long coalesceWindowMillis) {
+        this.name = name;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    public void addListener(IServiceProviderListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (pendingLock) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LoadBalancer-EventDispatcher-" + name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        listeners.add(listener);
+    }
+
+    public void removeListener(IServiceProviderListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListener(IServiceProviderListener listener) {
+        return listeners.contains(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Queue an event for delivery. Cheap and non blocking; does nothing when
+     * nobody listens.
+     */
+    public void publish(ServiceProviderEvent.Type type, ServiceProvider serviceProvider) {
+        if (listeners.isEmpty() || serviceProvider == null) {
+            return;
+        }
+        ServiceProviderEvent event = new ServiceProviderEvent(type, serviceProvider);
+        String healthKey = serviceProvider.getId() + "#health";
+        String key = event.isHealthEvent() ? healthKey : serviceProvider.getId() + "#membership";
+
+        synchronized (pendingLock) {
+            if (type == ServiceProviderEvent.Type.REMOVED) {
+                // Health of a provider that left the pool is of no interest...
+                ServiceProviderEvent health = pending.remove(healthKey);
+                if (health != null) {
+                    removedHealth.put(serviceProvider.getId(), health);
+                }
+            }
+            boolean cancelled = coalesce(key, event);
+            if (cancelled && type == ServiceProviderEvent.Type.ADDED) {
+                // ...unless it turns out it never left
+                ServiceProviderEvent health = removedHealth.remove(serviceProvider.getId());
+                if (health != null) {
+                    coalesce(healthKey, health);
+                }
+            }
+
+            if (!flushScheduled && !pending.isEmpty() && executor != null && !executor.isShutdown()) {
+                flushScheduled = true;
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, coalesceWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Run a task on the dispatcher thread, e.g. IO that must not happen on the
+     * publishing thread. Does nothing until a listener was added.
+     */
+    public void execute(Runnable task) {
+        synchronized (pendingLock) {
+            if (executor != null && !executor.isShutdown()) {
+                executor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * @return true if the event reverted the pending one for the same key
+     */
+    private boolean coalesce(String key, ServiceProviderEvent event) {
+        ServiceProviderEvent previous = pending.get(key);
+        if (previous == null) {
+            pending.put(key, event);
+            return false;
+        }
+        if (previous.getType() != event.getType()) {
+            // Back to the state it had when the batch started
+            pending.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deliver everything pending right now on the calling thread.
+     */
+    void flush() {
+        List<ServiceProviderEvent> batch;
+        synchronized (pendingLock) {
+            flushScheduled = false;
+            removedHealth.clear();
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = Collections.unmodifiableList(new ArrayList<ServiceProviderEvent>(pending.values()));
+            pending.clear();
+        }
+
+        logger.debug("LoadBalancer [{}]:  delivering {} event(s) to {} listener(s)", name, batch.size(), listeners.size());
+        for (IServiceProviderListener listener : listeners) {
+            try {
+                listener.onServiceProviderEvents(batch);
+            } catch (Exception e) {
+                logger.error("LoadBalancer [{}]: Error notifying listener {}", name, listener, e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        synchronized (pendingLock) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            pending.clear();
+            removedHealth.clear();
+            flushScheduled = false;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.iptiq.loadbalancer;
+
+/**
+ * Ping strategy answering from a {@link SharedHealthRegistry} instead of
+ * probing the servers itself. The <code>ping</code> passed in is ignored; the
+ * registry's own {@link IPing} is used on a cache miss.
+ */
+public class SharedHealthPingStrategy implements IPingStrategy {
+
+    private final SharedHealthRegistry registry;
+
+    public SharedHealthPingStrategy(SharedHealthRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean[] pingServers(IPing ping, ServiceProvider[] serviceProviders) {
+        boolean[] results = new boolean[serviceProviders.length];
+        for (int i = 0; i < serviceProviders.length; i++) {
+            results[i] = registry.isAlive(serviceProviders[i]);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,184 @@
+package com.iptiq.loadbalancer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process wide health cache shared by load balancers that point at the same
+ * backends. Every distinct {@link ServiceProvider} (by id) is probed once per
+ * interval on a single timer, no matter how many load balancers registered it,
+ * and the result is cached for <code>ttlMillis</code>. After each probe round
+ * the subscribers are told to pick up the fresh results, see
+ * {@link DefaultLoadBalancer#setHealthRegistry(SharedHealthRegistry)}.
+ *
+ */
+public class SharedHealthRegistry {
+
+    private static Logger logger = LoggerFactory.getLogger(SharedHealthRegistry.class);
+
+    public static final int DEFAULT_PING_INTERVAL_MILLIS = 1000;
+
+    private static volatile SharedHealthRegistry defaultInstance;
+
+    /**
+     * Callback invoked on the registry timer thread after every probe round.
+     */
+    public interface Subscriber {
+        void onProbeRoundComplete();
+    }
+
+    static class Entry {
+        final ServiceProvider serviceProvider;
+        int refCount;
+        volatile boolean alive;
+        volatile long checkedAt = 0; // never checked
+
+        Entry(ServiceProvider serviceProvider) {
+            this.serviceProvider = serviceProvider;
+        }
+    }
+
+    private final String name;
+    private final IPing ping;
+    private final IPingStrategy pingStrategy;
+    private final int pingIntervalMillis;
+    private final long ttlMillis;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private Timer timer = null;
+
+    /**
+     * @return the lazily created registry using {@link DummyPing} and the
+     * default interval
+     */
+    public static SharedHealthRegistry getDefault() {
+        if (defaultInstance == null) {
+            synchronized (SharedHealthRegistry.class) {
+                if (defaultInstance == null) {
+                    defaultInstance = new SharedHealthRegistry("default", new DummyPing(),
+                            new SerialPingStrategy(), DEFAULT_PING_INTERVAL_MILLIS, 2L * DEFAULT_PING_INTERVAL_MILLIS);
+                }
+            }
+        }
+        return defaultInstance;
+    }
+
+    public SharedHealthRegistry(String name, IPing ping, IPingStrategy pingStrategy,
+                                int pingIntervalMillis, long ttlMillis) {
+        this.name = name;
+        this.ping = ping;
+        this.pingStrategy = pingStrategy;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Start probing the given provider, unless some other load balancer
+     * already did. Each call must be paired with {@link #unregister(ServiceProvider)}.
+     */
+    public void register(ServiceProvider serviceProvider) {
+        synchronized (entries) {
+            Entry entry = entries.get(serviceProvider.getId());
+            if (entry == null) {
+                entry = new Entry(serviceProvider);
+                entries.put(serviceProvider.getId(), entry);
+                logger.debug("HealthRegistry [{}]:  registered ServiceProvider [{}]", name, serviceProvider.getId());
+            }
+            entry.refCount++;
+            if (timer == null) {
+                timer = new ShutdownEnabledTimer("HealthRegistry-PingTimer-" + name, true);
+                // New providers are probed on their first lookup, no need for a round right away
+                timer.schedule(new ProbeTask(), pingIntervalMillis, pingIntervalMillis);
+            }
+        }
+    }
+
+    public void unregister(ServiceProvider serviceProvider) {
+        synchronized (entries) {
+            Entry entry = entries.get(serviceProvider.getId());
+            if (entry != null && --entry.refCount <= 0) {
+                entries.remove(serviceProvider.getId());
+                logger.debug("HealthRegistry [{}]:  unregistered ServiceProvider [{}]", name, serviceProvider.getId());
+            }
+            if (entries.isEmpty() && timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return the cached health of the provider; probes it on the calling
+     * thread only if it is unknown or the cached result is older than the TTL.
+     */
+    public boolean isAlive(ServiceProvider serviceProvider) {
+        Entry entry = entries.get(serviceProvider.getId());
+        if (entry != null && entry.checkedAt > 0 && System.currentTimeMillis() - entry.checkedAt <= ttlMillis) {
+            return entry.alive;
+        }
+        boolean alive = pingStrategy.pingServers(ping, new ServiceProvider[]{serviceProvider})[0];
+        if (entry != null) {
+            entry.alive = alive;
+            entry.checkedAt = System.currentTimeMillis();
+        }
+        return alive;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Probe every registered provider once, then fan out to the subscribers.
+     */
+    void probeAll() {
+        List<Entry> snapshot = new ArrayList<Entry>(entries.values());
+        ServiceProvider[] serviceProviders = new ServiceProvider[snapshot.size()];
+        for (int i = 0; i < serviceProviders.length; i++) {
+            serviceProviders[i] = snapshot.get(i).serviceProvider;
+        }
+
+        boolean[] results = pingStrategy.pingServers(ping, serviceProviders);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < results.length; i++) {
+            Entry entry = snapshot.get(i);
+            entry.alive = results[i];
+            entry.checkedAt = now;
+        }
+
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.onProbeRoundComplete();
+            } catch (Exception e) {
+                logger.error("HealthRegistry [{}]: Error notifying subscriber {}", name, subscriber, e);
+            }
+        }
+    }
+
+    class ProbeTask extends TimerTask {
+        public void run() {
+            try {
+                probeAll();
+            } catch (Exception e) {
+                logger.error("HealthRegistry [{}]: Error pinging", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.iptiq.loadbalancer.simulation;
+
+import java.util.Random;
+
+/**
+ * Service time of a simulated provider, in microseconds.
+ */
+public interface LatencyDistribution {
+
+    long sampleMicros(Random random);
+
+    static LatencyDistribution constant(final long micros) {
+        return new LatencyDistribution() {
+            public long sampleMicros(Random random) {
+                return micros;
+            }
+        };
+    }
+
+    static LatencyDistribution exponential(final long meanMicros) {
+        return new LatencyDistribution() {
+            public long sampleMicros(Random random) {
+                return (long) (-meanMicros * Math.log(1.0 - random.nextDouble()));
+            }
+        };
+    }
+
+    /**
+     * Long tailed latency typical of real services.
+     *
+     * @param medianMicros median service time
+     * @param sigma        standard deviation of the underlying normal, ~0.5 is a moderate tail
+     */
+    static LatencyDistribution logNormal(final long medianMicros, final double sigma) {
+        return new LatencyDistribution() {
+            public long sampleMicros(Random random) {
+                return (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+}
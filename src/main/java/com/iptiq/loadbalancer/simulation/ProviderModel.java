@@ -0,0 +1,98 @@
+package com.iptiq.loadbalancer.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Behaviour of a simulated backend: latency distribution, how many requests it
+ * can serve concurrently, when it is down and when it stalls in GC pauses.
+ * All times are in microseconds of {@link VirtualClock} time.
+ */
+public class ProviderModel {
+
+    private LatencyDistribution latency = LatencyDistribution.constant(1000);
+    private int capacity = Integer.MAX_VALUE;
+    private final List<long[]> outages = new ArrayList<long[]>();
+    private long gcIntervalMicros = 0;
+    private long gcPauseMicros = 0;
+    private long gcOffsetMicros = 0;
+
+    public ProviderModel latency(LatencyDistribution latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param capacity concurrent requests served; requests beyond that are rejected
+     */
+    public ProviderModel capacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * Down (failing requests and pings) from <code>fromMicros</code> until it
+     * recovers at <code>toMicros</code>.
+     */
+    public ProviderModel outage(long fromMicros, long toMicros) {
+        outages.add(new long[]{fromMicros, toMicros});
+        return this;
+    }
+
+    /**
+     * Alternate up and down periods with exponentially distributed lengths
+     * until <code>untilMicros</code>.
+     */
+    public ProviderModel randomOutages(Random random, long meanUpMicros, long meanDownMicros, long untilMicros) {
+        LatencyDistribution up = LatencyDistribution.exponential(meanUpMicros);
+        LatencyDistribution down = LatencyDistribution.exponential(meanDownMicros);
+        long t = up.sampleMicros(random);
+        while (t < untilMicros) {
+            long end = t + down.sampleMicros(random);
+            outage(t, end);
+            t = end + up.sampleMicros(random);
+        }
+        return this;
+    }
+
+    /**
+     * Stop the world for <code>pauseMicros</code> every <code>intervalMicros</code>,
+     * starting at <code>offsetMicros</code>. Requests arriving during a pause
+     * wait for it to end.
+     */
+    public ProviderModel gcPauses(long intervalMicros, long pauseMicros, long offsetMicros) {
+        this.gcIntervalMicros = intervalMicros;
+        this.gcPauseMicros = pauseMicros;
+        this.gcOffsetMicros = offsetMicros;
+        return this;
+    }
+
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isUp(long nowMicros) {
+        for (long[] outage : outages) {
+            if (nowMicros >= outage[0] && nowMicros < outage[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return time left until the GC pause in progress ends, 0 if there is none
+     */
+    public long gcPauseRemaining(long nowMicros) {
+        if (gcIntervalMicros <= 0 || nowMicros < gcOffsetMicros) {
+            return 0;
+        }
+        long intoCycle = (nowMicros - gcOffsetMicros) % gcIntervalMicros;
+        return intoCycle < gcPauseMicros ? gcPauseMicros - intoCycle : 0;
+    }
+}
@@ -0,0 +1,139 @@
+package com.iptiq.loadbalancer.simulation;
+
+import com.iptiq.loadbalancer.ILoadBalancer;
+import com.iptiq.loadbalancer.ILoadBalancingAlgorithm;
+import com.iptiq.loadbalancer.IServiceProviderListener;
+import com.iptiq.loadbalancer.ProviderStateTable;
+import com.iptiq.loadbalancer.ServiceProvider;
+import com.iptiq.loadbalancer.ServiceProviderEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single threaded {@link ILoadBalancer} without timers; its up list only
+ * changes when the {@link Simulation} applies ping results or a client marks
+ * a server down. Listeners are called synchronously at that virtual time, one
+ * batch per change, so they stay deterministic too.
+ */
+public class SimulatedLoadBalancer implements ILoadBalancer {
+
+    private ILoadBalancingAlgorithm rule;
+    private List<ServiceProvider> allServiceProviderList = new ArrayList<ServiceProvider>();
+    private List<ServiceProvider> upServiceProviderList = new ArrayList<ServiceProvider>();
+    private ProviderStateTable stateTable = ProviderStateTable.build(allServiceProviderList);
+    private final List<IServiceProviderListener> listeners = new ArrayList<IServiceProviderListener>();
+
+    @Override
+    public void setLoadBalancingAlgorithm(ILoadBalancingAlgorithm rule) {
+        this.rule = rule;
+    }
+
+    @Override
+    public void addServers(List<ServiceProvider> newServiceProviders) {
+        Map<String, ServiceProviderEvent> events = new LinkedHashMap<String, ServiceProviderEvent>();
+        for (ServiceProvider svr : newServiceProviders) {
+            if (!allServiceProviderList.contains(svr)) {
+                events.put(svr.getId(), new ServiceProviderEvent(ServiceProviderEvent.Type.ADDED, svr));
+            }
+        }
+        allServiceProviderList.addAll(newServiceProviders);
+        stateTable = ProviderStateTable.build(allServiceProviderList);
+        deliver(events);
+    }
+
+    @Override
+    public ServiceProvider chooseServer() {
+        return rule == null ? null : rule.choose();
+    }
+
+    int chooseSlot() {
+        return rule == null ? -1 : rule.chooseSlot(stateTable);
+    }
+
+    @Override
+    public void markServerDown(ServiceProvider serviceProvider) {
+        if (serviceProvider == null || !serviceProvider.isAlive()) {
+            return;
+        }
+        serviceProvider.setAlive(false);
+        int slot = stateTable.slotOf(serviceProvider);
+        if (slot >= 0) {
+            stateTable.setAlive(slot, false);
+        }
+        List<ServiceProvider> newUpList = new ArrayList<ServiceProvider>(upServiceProviderList);
+        newUpList.remove(serviceProvider);
+        upServiceProviderList = newUpList;
+        deliver(Collections.singletonMap(serviceProvider.getId(),
+                new ServiceProviderEvent(ServiceProviderEvent.Type.DOWN, serviceProvider)));
+    }
+
+    void applyPingResults(ServiceProvider[] serviceProviders, boolean[] results) {
+        List<ServiceProvider> newUpList = new ArrayList<ServiceProvider>();
+        Map<String, ServiceProviderEvent> events = new LinkedHashMap<String, ServiceProviderEvent>();
+        for (int i = 0; i < serviceProviders.length; i++) {
+            if (serviceProviders[i].isAlive() != results[i]) {
+                events.put(serviceProviders[i].getId(), new ServiceProviderEvent(
+                        results[i] ? ServiceProviderEvent.Type.UP : ServiceProviderEvent.Type.DOWN, serviceProviders[i]));
+            }
+            serviceProviders[i].setAlive(results[i]);
+            stateTable.setAlive(stateTable.slotAt(i), results[i]);
+            if (results[i]) {
+                newUpList.add(serviceProviders[i]);
+            }
+        }
+        upServiceProviderList = newUpList;
+        deliver(events);
+    }
+
+    private void deliver(Map<String, ServiceProviderEvent> events) {
+        if (events.isEmpty() || listeners.isEmpty()) {
+            return;
+        }
+        List<ServiceProviderEvent> batch = Collections.unmodifiableList(
+                new ArrayList<ServiceProviderEvent>(events.values()));
+        for (IServiceProviderListener listener : new ArrayList<IServiceProviderListener>(listeners)) {
+            listener.onServiceProviderEvents(batch);
+        }
+    }
+
+    @Override
+    public ProviderStateTable getStateTable() {
+        return stateTable;
+    }
+
+    @Override
+    public List<ServiceProvider> getReachableServers() {
+        return Collections.unmodifiableList(upServiceProviderList);
+    }
+
+    @Override
+    public List<ServiceProvider> getAllServers() {
+        return Collections.unmodifiableList(allServiceProviderList);
+    }
+
+    @Override
+    public void addServiceProviderListener(IServiceProviderListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeServiceProviderListener(IServiceProviderListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public <U, T> U get(T req) throws Exception {
+        ServiceProvider s = chooseServer();
+        if (null != s) {
+            return (U) s.get(req);
+        } else {
+            throw new Exception("No downstream ServiceProviders are up");
+        }
+    }
+}
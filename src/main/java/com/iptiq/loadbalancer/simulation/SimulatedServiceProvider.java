@@ -0,0 +1,45 @@
+package com.iptiq.loadbalancer.simulation;
+
+import com.iptiq.loadbalancer.ServiceProvider;
+
+import java.util.Random;
+
+/**
+ * {@link ServiceProvider} whose {@link #check()} answers from its
+ * {@link ProviderModel} at the current virtual time instead of at random, so
+ * any {@link com.iptiq.loadbalancer.IPing} built on it (e.g.
+ * {@link com.iptiq.loadbalancer.DummyPing}) is deterministic.
+ */
+public class SimulatedServiceProvider extends ServiceProvider {
+
+    private final ProviderModel model;
+    private final VirtualClock clock;
+
+    Random random;
+    int inFlight = 0;
+    long served = 0;
+    long errors = 0;
+
+    public SimulatedServiceProvider(String id, ProviderModel model, VirtualClock clock) {
+        super(id);
+        this.model = model;
+        this.clock = clock;
+    }
+
+    public ProviderModel getModel() {
+        return model;
+    }
+
+    public long getServed() {
+        return served;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public boolean check() {
+        return model.isUp(clock.now());
+    }
+}
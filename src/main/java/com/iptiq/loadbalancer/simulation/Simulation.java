@@ -0,0 +1,196 @@
+package com.iptiq.loadbalancer.simulation;
+
+import com.iptiq.loadbalancer.DummyPing;
+import com.iptiq.loadbalancer.ILoadBalancer;
+import com.iptiq.loadbalancer.ILoadBalancingAlgorithm;
+import com.iptiq.loadbalancer.IPing;
+import com.iptiq.loadbalancer.IPingStrategy;
+import com.iptiq.loadbalancer.ProviderStateTable;
+import com.iptiq.loadbalancer.RoundRobinLoadBalancing;
+import com.iptiq.loadbalancer.SerialPingStrategy;
+import com.iptiq.loadbalancer.ServiceProvider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+/**
+ * Deterministic discrete event simulation of a load balancer in front of
+ * modelled providers. Requests arrive as a Poisson process on a
+ * {@link VirtualClock}, the configured {@link ILoadBalancingAlgorithm} picks a
+ * provider, and the {@link IPingStrategy} runs every ping interval of virtual
+ * time. Every source of randomness is derived from the seed, so the same
+ * setup always produces the same {@link SimulationReport}. That includes the
+ * algorithm, which is handed its own {@link Random} derived from the seed,
+ * e.g. <code>(lb, random) -&gt; new RandomLoadBalancing(lb, random)</code>.
+ */
+public class Simulation {
+
+    private final long seed;
+    private final VirtualClock clock = new VirtualClock();
+    private final SimulatedLoadBalancer lb = new SimulatedLoadBalancer();
+    private final List<SimulatedServiceProvider> providers = new ArrayList<SimulatedServiceProvider>();
+
+    private BiFunction<ILoadBalancer, Random, ILoadBalancingAlgorithm> algorithmFactory =
+            (lb, random) -> new RoundRobinLoadBalancing(lb);
+    private IPing ping = new DummyPing();
+    private IPingStrategy pingStrategy = new SerialPingStrategy();
+    private long pingIntervalMicros = 1000 * 1000;
+    private double requestsPerSecond = 1000;
+    private boolean markServerDownOnError = true;
+    private boolean ran = false;
+
+    private static class Completion implements Comparable<Completion> {
+        final long time;
+        final long seq;
+        final long started;
+        final SimulatedServiceProvider provider;
+        final int slot;
+
+        Completion(long time, long seq, long started, SimulatedServiceProvider provider, int slot) {
+            this.time = time;
+            this.seq = seq;
+            this.started = started;
+            this.provider = provider;
+            this.slot = slot;
+        }
+
+        public int compareTo(Completion o) {
+            int byTime = Long.compare(time, o.time);
+            return byTime != 0 ? byTime : Long.compare(seq, o.seq);
+        }
+    }
+
+    public Simulation(long seed) {
+        this.seed = seed;
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public SimulatedServiceProvider addProvider(String id, ProviderModel model) {
+        SimulatedServiceProvider provider = new SimulatedServiceProvider(id, model, clock);
+        provider.random = new Random(seed * 31 + providers.size());
+        providers.add(provider);
+        return provider;
+    }
+
+    /**
+     * @param algorithmFactory creates the algorithm under test for the simulated
+     *                         load balancer; any randomness it needs must come
+     *                         from the {@link Random} it is given
+     */
+    public void setAlgorithm(BiFunction<ILoadBalancer, Random, ILoadBalancingAlgorithm> algorithmFactory) {
+        this.algorithmFactory = algorithmFactory;
+    }
+
+    public void setPing(IPing ping) {
+        this.ping = ping;
+    }
+
+    public void setPingStrategy(IPingStrategy pingStrategy) {
+        this.pingStrategy = pingStrategy;
+    }
+
+    public void setPingIntervalMicros(long pingIntervalMicros) {
+        this.pingIntervalMicros = pingIntervalMicros;
+    }
+
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * @param markServerDownOnError whether a request failing on a down provider
+     *                              makes the client call markServerDown, as
+     *                              clients of a real load balancer should
+     */
+    public void setMarkServerDownOnError(boolean markServerDownOnError) {
+        this.markServerDownOnError = markServerDownOnError;
+    }
+
+    /**
+     * Send <code>requests</code> requests through the load balancer. A
+     * simulation can only be run once.
+     */
+    public SimulationReport run(long requests) {
+        if (ran) {
+            throw new IllegalStateException("Simulation already ran, create a new one");
+        }
+        ran = true;
+
+        // Providers use seed * 31 + 1.., so this stream is distinct from theirs
+        lb.setLoadBalancingAlgorithm(algorithmFactory.apply(lb, new Random(seed * 31)));
+        lb.addServers(new ArrayList<ServiceProvider>(providers));
+        ServiceProvider[] all = providers.toArray(new ServiceProvider[providers.size()]);
+        ProviderStateTable table = lb.getStateTable();
+
+        Random arrivals = new Random(seed);
+        LatencyDistribution interArrival = LatencyDistribution.exponential(Math.round(1000000 / requestsPerSecond));
+        PriorityQueue<Completion> completions = new PriorityQueue<Completion>();
+        long[] latencies = new long[(int) Math.min(requests, Integer.MAX_VALUE - 8)];
+        int latencyCount = 0;
+        long issued = 0;
+        long errors = 0;
+        long seq = 0;
+        long nextPing = 0;
+        long nextArrival = 0;
+
+        while (issued < requests) {
+            Completion completion = completions.peek();
+            if (completion != null && completion.time <= nextPing && completion.time <= nextArrival) {
+                completions.poll();
+                clock.advanceTo(completion.time);
+                completion.provider.inFlight--;
+                table.requestFinished(completion.slot, completion.time - completion.started);
+            } else if (nextPing <= nextArrival) {
+                clock.advanceTo(nextPing);
+                lb.applyPingResults(all, pingStrategy.pingServers(ping, all));
+                nextPing += pingIntervalMicros;
+            } else {
+                clock.advanceTo(nextArrival);
+                nextArrival += interArrival.sampleMicros(arrivals);
+                issued++;
+
+                int slot = lb.chooseSlot();
+                if (slot < 0) {
+                    errors++;
+                    continue;
+                }
+                SimulatedServiceProvider provider = (SimulatedServiceProvider) table.provider(slot);
+                ProviderModel model = provider.getModel();
+                long now = clock.now();
+                if (!model.isUp(now)) {
+                    errors++;
+                    provider.errors++;
+                    if (markServerDownOnError) {
+                        lb.markServerDown(provider);
+                    }
+                } else if (provider.inFlight >= model.getCapacity()) {
+                    errors++;
+                    provider.errors++;
+                } else {
+                    long latency = model.gcPauseRemaining(now) + model.getLatency().sampleMicros(provider.random);
+                    if (latencyCount < latencies.length) {
+                        latencies[latencyCount++] = latency;
+                    }
+                    table.requestStarted(slot);
+                    provider.inFlight++;
+                    provider.served++;
+                    completions.add(new Completion(now + latency, seq++, now, provider, slot));
+                }
+            }
+        }
+
+        Map<String, Long> servedByProvider = new LinkedHashMap<String, Long>();
+        for (SimulatedServiceProvider provider : providers) {
+            servedByProvider.put(provider.getId(), provider.served);
+        }
+        return new SimulationReport(issued, errors, latencies, latencyCount, servedByProvider);
+    }
+}
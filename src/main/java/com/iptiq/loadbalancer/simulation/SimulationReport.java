@@ -0,0 +1,102 @@
+package com.iptiq.loadbalancer.simulation;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a {@link Simulation} run. Latencies are in microseconds.
+ */
+public class SimulationReport {
+
+    private final long requests;
+    private final long errors;
+    private final long[] sortedLatencies;
+    private final Map<String, Long> servedByProvider;
+
+    SimulationReport(long requests, long errors, long[] latencies, int latencyCount,
+                     Map<String, Long> servedByProvider) {
+        this.requests = requests;
+        this.errors = errors;
+        this.sortedLatencies = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(this.sortedLatencies);
+        this.servedByProvider = new LinkedHashMap<String, Long>(servedByProvider);
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getErrorRate() {
+        return requests == 0 ? 0 : (double) errors / requests;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return latency of successful requests at that percentile, 0 if none succeeded
+     */
+    public long getLatencyPercentile(double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+    }
+
+    public long getP50() {
+        return getLatencyPercentile(50);
+    }
+
+    public long getP99() {
+        return getLatencyPercentile(99);
+    }
+
+    public Map<String, Long> getServedByProvider() {
+        return servedByProvider;
+    }
+
+    /**
+     * @return requests served by the busiest provider divided by the mean over
+     * all providers; 1.0 is perfectly even
+     */
+    public double getLoadImbalance() {
+        long max = 0;
+        long total = 0;
+        for (long served : servedByProvider.values()) {
+            max = Math.max(max, served);
+            total += served;
+        }
+        return total == 0 ? 0 : max / ((double) total / servedByProvider.size());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof SimulationReport))
+            return false;
+        SimulationReport other = (SimulationReport) obj;
+        return requests == other.requests && errors == other.errors
+                && Arrays.equals(sortedLatencies, other.sortedLatencies)
+                && servedByProvider.equals(other.servedByProvider);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + Long.hashCode(requests);
+        hash = 31 * hash + Long.hashCode(errors);
+        hash = 31 * hash + Arrays.hashCode(sortedLatencies);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests=%d errors=%d (%.3f%%) p50=%dus p99=%dus imbalance=%.3f",
+                requests, errors, getErrorRate() * 100, getP50(), getP99(), getLoadImbalance());
+    }
+}
@@ -0,0 +1,21 @@
+package com.iptiq.loadbalancer.simulation;
+
+/**
+ * Simulated time in microseconds. Only moves when the {@link Simulation}
+ * advances it, so nothing in a run depends on the wall clock.
+ */
+public class VirtualClock {
+
+    private long nowMicros = 0;
+
+    public long now() {
+        return nowMicros;
+    }
+
+    void advanceTo(long micros) {
+        if (micros < nowMicros) {
+            throw new IllegalArgumentException("Time cannot go backwards: " + micros + " < " + nowMicros);
+        }
+        nowMicros = micros;
+    }
+}
@@ -0,0 +1,190 @@
+package com.iptiq.loadbalancer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HealthSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<ServiceProvider> providers(boolean... alive) {
+        List<ServiceProvider> serviceProviders = new ArrayList<>();
+        for (int i = 0; i < alive.length; i++) {
+            ServiceProvider svr = new ServiceProvider(String.valueOf(i));
+            svr.setAlive(alive[i]);
+            serviceProviders.add(svr);
+        }
+        return serviceProviders;
+    }
+
+    private ProviderStateTable table(boolean... alive) {
+        return ProviderStateTable.build(providers(alive));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+        List<ServiceProvider> serviceProviders = providers(true, false, true);
+        serviceProviders.add(new ServiceProvider("2"));
+        ProviderStateTable table = ProviderStateTable.build(serviceProviders);
+        table.setLatencyEwma(1, 1500);
+        new HealthSnapshot(file).save(table);
+
+        HealthSnapshot restored = new HealthSnapshot(file);
+        assertEquals(Boolean.TRUE, restored.lastKnownAlive("0"));
+        assertEquals(Boolean.FALSE, restored.lastKnownAlive("1"));
+        assertEquals(Boolean.TRUE, restored.lastKnownAlive("2"));
+        assertNull(restored.lastKnownAlive("3"));
+        assertEquals(1500, restored.lastKnownLatencyEwma("1"), 0.001);
+        assertEquals(0, restored.lastKnownLatencyEwma("3"), 0.001);
+    }
+
+    @Test
+    public void testStaleOrMissingSnapshotIsIgnored() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+        assertNull(new HealthSnapshot(file).lastKnownAlive("0"));
+
+        new HealthSnapshot(file).save(table(true));
+        Thread.sleep(20);
+        assertNull(new HealthSnapshot(file, 10).lastKnownAlive("0"));
+    }
+
+    @Test
+    public void testSnapshotExpiresAfterLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+        new HealthSnapshot(file).save(table(true));
+
+        HealthSnapshot snapshot = new HealthSnapshot(file, 200);
+        assertEquals(Boolean.TRUE, snapshot.lastKnownAlive("0"));
+        Thread.sleep(250);
+        assertNull(snapshot.lastKnownAlive("0"));
+    }
+
+    @Test
+    public void testOnlyNewProvidersAreSeeded() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+        ProviderStateTable saved = table(true, true);
+        saved.setLatencyEwma(0, 1500);
+        saved.setLatencyEwma(1, 1500);
+        new HealthSnapshot(file).save(saved);
+
+        DefaultLoadBalancer lb = new DefaultLoadBalancer();
+        lb.setHealthSnapshot(new HealthSnapshot(file));
+        List<ServiceProvider> serviceProviders = providers(true, true);
+        lb.addServer(serviceProviders.get(0));
+        ProviderStateTable table = lb.getStateTable();
+        assertEquals(1500, table.latencyEwma(0), 0.001);
+        table.setLatencyEwma(0, 200);
+
+        lb.addServer(serviceProviders.get(1));
+        table = lb.getStateTable();
+        lb.shutdown();
+
+        // The survivor keeps its live statistics; the snapshot was dropped
+        // after the first restore, so later providers start fresh
+        assertEquals(200, table.latencyEwma(table.slotOf(serviceProviders.get(0))), 0.001);
+        assertEquals(0, table.latencyEwma(table.slotOf(serviceProviders.get(1))), 0.001);
+    }
+
+    @Test
+    public void testSnapshotIsSavedPeriodically() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+
+        DefaultLoadBalancer lb = new DefaultLoadBalancer();
+        lb.snapshotIntervalMillis = 50;
+        lb.ping = new IPing() {
+            public boolean isAlive(ServiceProvider serviceProvider) {
+                return true;
+            }
+        };
+        lb.setHealthSnapshot(new HealthSnapshot(file));
+        lb.addServers(providers(true));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Boolean.TRUE.equals(new HealthSnapshot(file).lastKnownAlive("0"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        lb.getStateTable().setLatencyEwma(0, 700);
+
+        // No health change follows, only the timer can write the new latency
+        while (new HealthSnapshot(file).lastKnownLatencyEwma("0") != 700
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        lb.shutdown();
+
+        assertEquals(700, new HealthSnapshot(file).lastKnownLatencyEwma("0"), 0.001);
+    }
+
+    @Test
+    public void testLoadBalancerPersistsHealth() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+        new HealthSnapshot(file).save(table(true, true));
+
+        DefaultLoadBalancer lb = new DefaultLoadBalancer();
+        lb.ping = new IPing() {
+            public boolean isAlive(ServiceProvider serviceProvider) {
+                return false;
+            }
+        };
+        lb.setHealthSnapshot(new HealthSnapshot(file));
+        lb.addServers(providers(false, false, false));
+
+        // Restored as alive, then the ping says DOWN, which is written back asynchronously
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Boolean.TRUE.equals(new HealthSnapshot(file).lastKnownAlive("0"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        lb.shutdown();
+
+        HealthSnapshot persisted = new HealthSnapshot(file);
+        assertTrue(Files.exists(file));
+        assertEquals(3, lb.getAllServers().size());
+        assertEquals(Boolean.FALSE, persisted.lastKnownAlive("0"));
+    }
+
+    @Test
+    public void testRestoredProvidersServeBeforeFirstProbe() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("health.bin");
+        new HealthSnapshot(file).save(table(true, true));
+
+        final CountDownLatch probesReleased = new CountDownLatch(1);
+        DefaultLoadBalancer lb = new DefaultLoadBalancer();
+        lb.ping = new IPing() {
+            public boolean isAlive(ServiceProvider serviceProvider) {
+                try {
+                    probesReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        };
+        lb.setHealthSnapshot(new HealthSnapshot(file));
+        lb.addServers(providers(false, false));
+
+        try {
+            ServiceProvider chosen = lb.chooseServer();
+            assertNotNull(chosen);
+            assertTrue(chosen.isAlive());
+            assertEquals(2, lb.getReachableServers().size());
+        } finally {
+            probesReleased.countDown();
+            lb.shutdown();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.iptiq.loadbalancer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderStateTableTest {
+
+    private List<ServiceProvider> providers(int count) {
+        List<ServiceProvider> serviceProviders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            serviceProviders.add(new ServiceProvider(String.valueOf(i)));
+        }
+        return serviceProviders;
+    }
+
+    @Test
+    public void testLivenessAcrossWords() {
+        ProviderStateTable table = ProviderStateTable.build(providers(200));
+        assertEquals(200, table.size());
+        assertEquals(0, table.aliveWeight());
+        assertEquals(-1, table.nextAlive(0));
+
+        table.setAlive(3, true);
+        table.setAlive(64, true);
+        table.setAlive(199, true);
+        assertEquals(3, table.aliveWeight());
+        assertEquals(3, table.nextAlive(0));
+        assertEquals(64, table.nextAlive(4));
+        assertEquals(199, table.nextAlive(65));
+        assertEquals(-1, table.nextAlive(200));
+        assertEquals(3, table.chooseAlive(0));
+        assertEquals(64, table.chooseAlive(1));
+        assertEquals(199, table.chooseAlive(2));
+        assertEquals(-1, table.chooseAlive(3));
+
+        table.setAlive(64, false);
+        assertFalse(table.isAlive(64));
+        assertEquals(199, table.nextAlive(4));
+    }
+
+    @Test
+    public void testDuplicatesBecomeWeight() {
+        List<ServiceProvider> serviceProviders = providers(3);
+        serviceProviders.add(new ServiceProvider("1"));
+        serviceProviders.get(1).setAlive(true);
+        serviceProviders.get(2).setAlive(true);
+        ProviderStateTable table = ProviderStateTable.build(serviceProviders);
+
+        assertEquals(3, table.size());
+        assertEquals(4, table.positions());
+        assertEquals(1, table.slotAt(3));
+        assertEquals(2, table.weight(1));
+        assertTrue(table.isAlive(1));
+        assertEquals(3, table.aliveWeight());
+        assertEquals(1, table.chooseAlive(0));
+        assertEquals(1, table.chooseAlive(1));
+        assertEquals(2, table.chooseAlive(2));
+    }
+
+    @Test
+    public void testRequestStatistics() {
+        ProviderStateTable table = ProviderStateTable.build(providers(2));
+        table.requestStarted(1);
+        table.requestStarted(1);
+        assertEquals(2, table.inFlight(1));
+        assertEquals(0, table.inFlight(0));
+
+        table.requestFinished(1, 1000);
+        assertEquals(1000, table.latencyEwma(1), 0.001);
+        table.requestFinished(1, 2000);
+        assertEquals(1000 + ProviderStateTable.EWMA_ALPHA * 1000, table.latencyEwma(1), 0.001);
+        assertEquals(0, table.inFlight(1));
+    }
+
+    @Test
+    public void testRebuildKeepsStatisticsOfRemainingProviders() {
+        List<ServiceProvider> serviceProviders = providers(2);
+        ProviderStateTable table = ProviderStateTable.build(serviceProviders);
+        table.requestStarted(1);
+        table.requestFinished(1, 1000);
+        table.requestStarted(1);
+        table.requestStarted(0);
+
+        // "0" leaves, "1" stays and moves to slot 1 behind the new "2"
+        List<ServiceProvider> newList = new ArrayList<>();
+        newList.add(new ServiceProvider("2"));
+        newList.add(serviceProviders.get(1));
+        ProviderStateTable rebuilt = ProviderStateTable.build(newList, table);
+
+        assertEquals(1, rebuilt.slotOf(serviceProviders.get(1)));
+        assertEquals(1, rebuilt.inFlight(1));
+        assertEquals(1000, rebuilt.latencyEwma(1), 0.001);
+        assertEquals(0, rebuilt.inFlight(0));
+        assertEquals(0, rebuilt.latencyEwma(0), 0.001);
+    }
+
+    @Test
+    public void testRoundRobinSkipsSlotsNotReadyToServe() {
+        List<ServiceProvider> serviceProviders = new ArrayList<>();
+        serviceProviders.add(new ServiceProvider("warming") {
+            @Override
+            public boolean isReadyToServe() {
+                return false;
+            }
+        });
+        serviceProviders.add(new ServiceProvider("ready"));
+        for (ServiceProvider svr : serviceProviders) {
+            svr.setAlive(true);
+        }
+        ProviderStateTable table = ProviderStateTable.build(serviceProviders);
+        assertFalse(table.isReadyToServe(0));
+        assertTrue(table.isReadyToServe(1));
+
+        RoundRobinLoadBalancing roundRobin = new RoundRobinLoadBalancing(null);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, roundRobin.chooseSlot(table));
+        }
+    }
+
+    /**
+     * A third party load balancer that only implements the list API.
+     */
+    private static class ListOnlyLoadBalancer implements ILoadBalancer {
+        private final List<ServiceProvider> servers = new ArrayList<>();
+
+        public void addServers(List<ServiceProvider> newServiceProviders) {
+            servers.addAll(newServiceProviders);
+        }
+
+        public ServiceProvider chooseServer() {
+            return null;
+        }
+
+        public void markServerDown(ServiceProvider serviceProvider) {
+            serviceProvider.setAlive(false);
+        }
+
+        public List<ServiceProvider> getReachableServers() {
+            List<ServiceProvider> up = new ArrayList<>();
+            for (ServiceProvider svr : servers) {
+                if (svr.isAlive()) {
+                    up.add(svr);
+                }
+            }
+            return up;
+        }
+
+        public List<ServiceProvider> getAllServers() {
+            return servers;
+        }
+
+        public <U, T> U get(T req) {
+            return null;
+        }
+
+        public void setLoadBalancingAlgorithm(ILoadBalancingAlgorithm algorithm) {
+        }
+    }
+
+    @Test
+    public void testAlgorithmsFallBackToListsWithoutTable() {
+        ListOnlyLoadBalancer lb = new ListOnlyLoadBalancer();
+        List<ServiceProvider> serviceProviders = providers(3);
+        serviceProviders.get(1).setAlive(true);
+        lb.addServers(serviceProviders);
+
+        assertEquals("1", new RoundRobinLoadBalancing(lb).choose().getId());
+        assertEquals("1", new RandomLoadBalancing(lb).choose().getId());
+
+        serviceProviders.get(1).setAlive(false);
+        assertEquals(null, new RoundRobinLoadBalancing(lb).choose());
+        assertEquals(null, new RandomLoadBalancing(lb).choose());
+    }
+
+    @Test
+    public void testDefaultChooseSlotMapsThroughChoose() {
+        final List<ServiceProvider> serviceProviders = providers(3);
+        ProviderStateTable table = ProviderStateTable.build(serviceProviders);
+        ILoadBalancingAlgorithm thirdParty = new ILoadBalancingAlgorithm() {
+            public ServiceProvider choose() {
+                return serviceProviders.get(2);
+            }
+        };
+        assertEquals(2, thirdParty.chooseSlot(table));
+    }
+}
@@ -0,0 +1,105 @@
+package com.iptiq.loadbalancer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceProviderEventDispatcherTest {
+    private ServiceProviderEventDispatcher dispatcher;
+    private final List<List<ServiceProviderEvent>> batches = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        // Long window so that nothing gets delivered before flush() in these tests
+        dispatcher = new ServiceProviderEventDispatcher("test", 60000);
+        dispatcher.addListener(new IServiceProviderListener() {
+            public void onServiceProviderEvents(List<ServiceProviderEvent> events) {
+                batches.add(events);
+            }
+        });
+    }
+
+    @Test
+    public void testFlappingIsCoalesced() {
+        ServiceProvider a = new ServiceProvider("a");
+        ServiceProvider b = new ServiceProvider("b");
+        dispatcher.publish(ServiceProviderEvent.Type.DOWN, a);
+        dispatcher.publish(ServiceProviderEvent.Type.UP, a);
+        dispatcher.publish(ServiceProviderEvent.Type.DOWN, a);
+        dispatcher.publish(ServiceProviderEvent.Type.UP, b);
+        dispatcher.publish(ServiceProviderEvent.Type.UP, b);
+        ServiceProvider c = new ServiceProvider("c");
+        dispatcher.publish(ServiceProviderEvent.Type.ADDED, c);
+        dispatcher.publish(ServiceProviderEvent.Type.REMOVED, c);
+        dispatcher.flush();
+
+        assertEquals(1, batches.size());
+        List<ServiceProviderEvent> batch = batches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(ServiceProviderEvent.Type.DOWN, batch.get(0).getType());
+        assertEquals("a", batch.get(0).getServiceProvider().getId());
+        assertEquals(ServiceProviderEvent.Type.UP, batch.get(1).getType());
+        assertEquals("b", batch.get(1).getServiceProvider().getId());
+    }
+
+    @Test
+    public void testFullyRevertedBatchIsNotDelivered() {
+        ServiceProvider a = new ServiceProvider("a");
+        dispatcher.publish(ServiceProviderEvent.Type.UP, a);
+        dispatcher.publish(ServiceProviderEvent.Type.DOWN, a);
+        dispatcher.flush();
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void testRemovalDropsPendingHealthEvent() {
+        ServiceProvider a = new ServiceProvider("a");
+        dispatcher.publish(ServiceProviderEvent.Type.UP, a);
+        dispatcher.publish(ServiceProviderEvent.Type.REMOVED, a);
+        dispatcher.flush();
+
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(ServiceProviderEvent.Type.REMOVED, batches.get(0).get(0).getType());
+    }
+
+    @Test
+    public void testReAddedProviderKeepsHealthEvent() {
+        ServiceProvider a = new ServiceProvider("a");
+        dispatcher.publish(ServiceProviderEvent.Type.UP, a);
+        dispatcher.publish(ServiceProviderEvent.Type.REMOVED, a);
+        dispatcher.publish(ServiceProviderEvent.Type.ADDED, a);
+        dispatcher.flush();
+
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(ServiceProviderEvent.Type.UP, batches.get(0).get(0).getType());
+    }
+
+    @Test
+    public void testAsyncDeliveryFromLoadBalancer() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        DefaultLoadBalancer lb = new DefaultLoadBalancer();
+        lb.addServiceProviderListener(new IServiceProviderListener() {
+            public void onServiceProviderEvents(List<ServiceProviderEvent> events) {
+                for (ServiceProviderEvent event : events) {
+                    if (event.getType() == ServiceProviderEvent.Type.ADDED) {
+                        latch.countDown();
+                    }
+                }
+            }
+        });
+        List<ServiceProvider> serviceProviders = new ArrayList<>();
+        serviceProviders.add(new ServiceProvider("x"));
+        lb.addServers(serviceProviders);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        lb.shutdown();
+    }
+}
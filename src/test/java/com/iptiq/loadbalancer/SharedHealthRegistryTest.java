@@ -0,0 +1,80 @@
+package com.iptiq.loadbalancer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class SharedHealthRegistryTest {
+
+    private final ConcurrentMap<String, AtomicInteger> probes = new ConcurrentHashMap<>();
+
+    private final IPing countingPing = new IPing() {
+        public boolean isAlive(ServiceProvider serviceProvider) {
+            probes.computeIfAbsent(serviceProvider.getId(), (id) -> new AtomicInteger()).incrementAndGet();
+            return true;
+        }
+    };
+
+    private int totalProbes() {
+        int total = 0;
+        for (AtomicInteger count : probes.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    private List<ServiceProvider> providers(int count) {
+        List<ServiceProvider> serviceProviders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            serviceProviders.add(new ServiceProvider(String.valueOf(i)));
+        }
+        return serviceProviders;
+    }
+
+    @Test
+    public void testProvidersSharedByBalancersAreProbedOnce() throws Exception {
+        // Long interval: rounds are driven by hand below
+        SharedHealthRegistry registry = new SharedHealthRegistry("test", countingPing,
+                new SerialPingStrategy(), 60000, 60000);
+
+        DefaultLoadBalancer first = new DefaultLoadBalancer(registry);
+        first.addServers(providers(3));
+
+        DefaultLoadBalancer second = new DefaultLoadBalancer(registry);
+        second.addServers(providers(3));
+
+        assertEquals(3, registry.size());
+        assertEquals(3, totalProbes());
+
+        int before = totalProbes();
+        for (int i = 0; i < 5; i++) {
+            registry.probeAll();
+        }
+        assertEquals(5 * 3, totalProbes() - before);
+        assertEquals(3, first.getReachableServers().size());
+        assertEquals(3, second.getReachableServers().size());
+
+        first.shutdown();
+        assertEquals(3, registry.size());
+        second.shutdown();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testNewProvidersAreReachableRightAway() throws Exception {
+        SharedHealthRegistry registry = new SharedHealthRegistry("test", countingPing,
+                new SerialPingStrategy(), 60000, 60000);
+        DefaultLoadBalancer lb = new DefaultLoadBalancer(registry);
+        lb.addServers(providers(3));
+
+        assertEquals(3, lb.getReachableServers().size());
+        assertEquals(3, totalProbes());
+        lb.shutdown();
+    }
+}
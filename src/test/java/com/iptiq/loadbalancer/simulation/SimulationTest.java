@@ -0,0 +1,95 @@
+package com.iptiq.loadbalancer.simulation;
+
+import com.iptiq.loadbalancer.IServiceProviderListener;
+import com.iptiq.loadbalancer.RandomLoadBalancing;
+import com.iptiq.loadbalancer.RoundRobinLoadBalancing;
+import com.iptiq.loadbalancer.ServiceProviderEvent;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulationTest {
+    private static final Logger log = LoggerFactory.getLogger(SimulationTest.class);
+    private static final long SECOND = 1000 * 1000;
+
+    private Simulation simulation(long seed, boolean random) {
+        Simulation simulation = new Simulation(seed);
+        simulation.setRequestsPerSecond(2000);
+        simulation.setPingIntervalMicros(100 * 1000);
+        if (random) {
+            simulation.setAlgorithm((lb, rnd) -> new RandomLoadBalancing(lb, rnd));
+        }
+        for (int i = 0; i < 4; i++) {
+            simulation.addProvider(String.valueOf(i), new ProviderModel()
+                    .latency(LatencyDistribution.logNormal(2000, 0.5))
+                    .capacity(50)
+                    .gcPauses(2 * SECOND, 50 * 1000, i * 500 * 1000));
+        }
+        simulation.addProvider("flaky", new ProviderModel()
+                .latency(LatencyDistribution.exponential(5000))
+                .outage(5 * SECOND, 10 * SECOND)
+                .randomOutages(new Random(seed), 20 * SECOND, SECOND, 60 * SECOND));
+        return simulation;
+    }
+
+    @Test
+    public void testSameSeedSameReport() {
+        SimulationReport first = simulation(42, true).run(100000);
+        SimulationReport second = simulation(42, true).run(100000);
+        log.info("Random: {}", first);
+        assertEquals(first, second);
+        assertEquals(100000, first.getRequests());
+    }
+
+    @Test
+    public void testRoundRobinReport() {
+        SimulationReport report = simulation(42, false).run(100000);
+        log.info("RoundRobin: {}", report);
+        assertTrue(report.getP50() > 0);
+        assertTrue(report.getP99() >= report.getP50());
+        // The flaky provider fails some requests before the next ping notices
+        assertTrue(report.getErrors() > 0);
+        assertTrue(report.getErrorRate() < 0.05);
+        assertTrue(report.getLoadImbalance() >= 1.0);
+    }
+
+    @Test
+    public void testListenersSeeOutagesAtVirtualTime() {
+        final Simulation simulation = simulation(42, false);
+        final List<String> seen = new ArrayList<>();
+        simulation.setAlgorithm((lb, rnd) -> {
+            lb.addServiceProviderListener(new IServiceProviderListener() {
+                public void onServiceProviderEvents(List<ServiceProviderEvent> events) {
+                    for (ServiceProviderEvent event : events) {
+                        if (event.getServiceProvider().getId().equals("flaky")) {
+                            seen.add(event.getType() + "@" + simulation.getClock().now());
+                        }
+                    }
+                }
+            });
+            return new RoundRobinLoadBalancing(lb);
+        });
+        simulation.run(30000);
+
+        assertEquals("ADDED@0", seen.get(0));
+        assertEquals("UP@0", seen.get(1));
+        assertTrue(seen.contains("DOWN@" + 5 * SECOND));
+        assertTrue(seen.contains("UP@" + 10 * SECOND));
+    }
+
+    @Test
+    public void testAllProvidersDown() {
+        Simulation simulation = new Simulation(1);
+        simulation.addProvider("down", new ProviderModel().outage(0, Long.MAX_VALUE));
+        SimulationReport report = simulation.run(1000);
+        assertEquals(1000, report.getErrors());
+        assertEquals(0, report.getP99());
+    }
+}